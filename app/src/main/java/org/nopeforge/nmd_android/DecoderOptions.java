@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import android.content.Intent;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * nopemd buffering and decoding options forwarded to the native benchmarks.
+ */
+public class DecoderOptions {
+    public static final String[] SW_PIX_FMTS = {"rgba", "bgra"};
+
+    public final int maxNbPackets;
+    public final int maxNbFrames;
+    public final int maxNbSink;
+    public final int autoHwaccel;
+    public final String swPixFmt;
+
+    public DecoderOptions(int maxNbPackets, int maxNbFrames, int maxNbSink, int autoHwaccel, String swPixFmt) {
+        this.maxNbPackets = maxNbPackets;
+        this.maxNbFrames = maxNbFrames;
+        this.maxNbSink = maxNbSink;
+        this.autoHwaccel = autoHwaccel;
+        this.swPixFmt = swPixFmt;
+    }
+
+    /**
+     * Reads the options from the broadcast extras, falling back on the given
+     * defaults for the missing ones.
+     */
+    public static DecoderOptions fromIntent(Intent intent, DecoderOptions defaults) {
+        String swPixFmt = intent.getStringExtra("sw_pix_fmt");
+        return new DecoderOptions(
+                intent.getIntExtra("max_nb_packets", defaults.maxNbPackets),
+                intent.getIntExtra("max_nb_frames", defaults.maxNbFrames),
+                intent.getIntExtra("max_nb_sink", defaults.maxNbSink),
+                intent.getIntExtra("auto_hwaccel", defaults.autoHwaccel),
+                swPixFmt != null ? swPixFmt : defaults.swPixFmt);
+    }
+
+    /**
+     * Returns a description of the first invalid option, or null if all the
+     * options are valid. nopemd rejects invalid values without failing, so
+     * they must be caught before a run is labelled with them.
+     */
+    public String validate() {
+        if (maxNbPackets < 1)
+            return "invalid max_nb_packets: " + maxNbPackets;
+        if (maxNbFrames < 1)
+            return "invalid max_nb_frames: " + maxNbFrames;
+        if (maxNbSink < 1)
+            return "invalid max_nb_sink: " + maxNbSink;
+        if (autoHwaccel != 0 && autoHwaccel != 1)
+            return "invalid auto_hwaccel: " + autoHwaccel;
+        if (swPixFmt != null && !Arrays.asList(SW_PIX_FMTS).contains(swPixFmt))
+            return "invalid sw_pix_fmt: " + swPixFmt;
+        return null;
+    }
+
+    public DecoderOptions withQueueDepths(int maxNbPackets, int maxNbFrames, int maxNbSink) {
+        return new DecoderOptions(maxNbPackets, maxNbFrames, maxNbSink, autoHwaccel, swPixFmt);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject options = new JSONObject();
+        options.put("max_nb_packets", maxNbPackets);
+        options.put("max_nb_frames", maxNbFrames);
+        options.put("max_nb_sink", maxNbSink);
+        options.put("auto_hwaccel", autoHwaccel);
+        options.put("sw_pix_fmt", swPixFmt != null ? swPixFmt : JSONObject.NULL);
+        return options;
+    }
+
+    /**
+     * Returns a short tag identifying the options, suitable for result filenames.
+     */
+    public String getTag() {
+        String tag = "p" + maxNbPackets + "f" + maxNbFrames + "s" + maxNbSink;
+        if (autoHwaccel == 0)
+            tag += "-sw";
+        if (swPixFmt != null)
+            tag += "-" + swPixFmt;
+        return tag;
+    }
+}
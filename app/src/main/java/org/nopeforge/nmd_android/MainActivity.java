@@ -42,10 +42,22 @@ import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+
 public class MainActivity extends AppCompatActivity implements TextureView.SurfaceTextureListener {
 
     public static final String TAG = "MainActivity";
 
+    private static final DecoderOptions DEFAULT_DECODE_OPTIONS = new DecoderOptions(10, 1, 1, 1, null);
+    private static final DecoderOptions DEFAULT_SEEK_OPTIONS = new DecoderOptions(1, 1, 1, 1, null);
+    private static final DecoderOptions DEFAULT_RANDOM_SEEK_OPTIONS = new DecoderOptions(1, 1, 1, 1, "rgba");
+    private static final DecoderOptions DEFAULT_AUDIO_OPTIONS = new DecoderOptions(1, 1, 1, 0, null);
+
     private TextureView[] textureViews;
     private Surface[] surfaces;
 
@@ -72,17 +84,56 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
             String filename = intent.getStringExtra("filename");
             Log.i(TAG, "Action " + action + " filename= " + filename);
 
+            int memoryBudgetMb = intent.getIntExtra("memory_budget_mb", -1);
+            if (memoryBudgetMb >= 0)
+                MemoryBudget.setBudget(memoryBudgetMb * 1024L * 1024L);
+
             if (action == "test_audiodecode") {
-                testAudioDecode(filename);
+                DecoderOptions options = DecoderOptions.fromIntent(intent, DEFAULT_AUDIO_OPTIONS);
+                if (!checkOptions(options))
+                    return;
+                testAudioDecode(filename, options);
             } else if (action == "test_videodecode") {
                 int nbDecoders = intent.getIntExtra("nb_decoders", 1);
                 int nbFrames = intent.getIntExtra("nb_frames", 600);
                 nbDecoders = Math.min(nbDecoders, surfaces.length);
-                testVideoDecode(filename, nbDecoders, nbFrames);
+                DecoderOptions options = DecoderOptions.fromIntent(intent, DEFAULT_DECODE_OPTIONS);
+                if (!checkOptions(options))
+                    return;
+                boolean allowSoftware = !"refuse".equals(intent.getStringExtra("over_budget"));
+                boolean mediaCodec = "mediacodec".equals(intent.getStringExtra("decoder"));
+                testVideoDecode(filename, nbDecoders, nbFrames, options, allowSoftware, mediaCodec);
             } else if (action == "test_seek") {
-                testSeek(filename);
+                DecoderOptions options = DecoderOptions.fromIntent(intent, DEFAULT_SEEK_OPTIONS);
+                if (!checkOptions(options))
+                    return;
+                testSeek(filename, options);
+            } else if (action == "test_sweep") {
+                int nbDecoders = intent.getIntExtra("nb_decoders", 1);
+                int nbFrames = intent.getIntExtra("nb_frames", 600);
+                nbDecoders = Math.min(nbDecoders, surfaces.length);
+                DecoderOptions options = DecoderOptions.fromIntent(intent, DEFAULT_DECODE_OPTIONS);
+                if (!checkOptions(options))
+                    return;
+                int[] maxNbPackets = getIntArrayExtra(intent, "max_nb_packets_grid", QueueDepthSweep.DEFAULT_MAX_NB_PACKETS);
+                int[] maxNbFrames = getIntArrayExtra(intent, "max_nb_frames_grid", QueueDepthSweep.DEFAULT_MAX_NB_FRAMES);
+                int[] maxNbSink = getIntArrayExtra(intent, "max_nb_sink_grid", QueueDepthSweep.DEFAULT_MAX_NB_SINK);
+                testSweep(filename, nbDecoders, nbFrames, options, maxNbPackets, maxNbFrames, maxNbSink);
+            } else if (action == "test_playback") {
+                int nbStreams = intent.getIntExtra("nb_streams", 1);
+                nbStreams = Math.min(nbStreams, surfaces.length);
+                double duration = intent.getFloatExtra("duration", 10.0f);
+                boolean javaClock = "java".equals(intent.getStringExtra("clock"));
+                boolean audio = intent.getIntExtra("audio", 0) != 0;
+                DecoderOptions options = DecoderOptions.fromIntent(intent, DEFAULT_DECODE_OPTIONS);
+                if (!checkOptions(options))
+                    return;
+                testPlayback(filename, nbStreams, duration, options, audio, javaClock);
             } else if (action == "test_randomseek") {
-                testRandomSeek(filename);
+                DecoderOptions options = DecoderOptions.fromIntent(intent, DEFAULT_RANDOM_SEEK_OPTIONS);
+                if (!checkOptions(options))
+                    return;
+                testRandomSeek(filename, options);
             }
         }
     };
@@ -103,6 +154,8 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
                 R.id.textureView7,
         };
 
+        MemoryBudget.setBudget(MemoryBudget.getDefaultBudget(this));
+
         textureViews = new TextureView[ids.length];
         for (int i = 0; i < ids.length; i++) {
             textureViews[i] = findViewById(ids[i]);
@@ -126,6 +179,8 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
         intentFilter.addAction("test_audiodecode");
         intentFilter.addAction("test_videodecode");
         intentFilter.addAction("test_seek");
+        intentFilter.addAction("test_sweep");
+        intentFilter.addAction("test_playback");
         intentFilter.addAction("test_randomseek");
         registerReceiver(sceneReceiver, intentFilter);
     }
@@ -159,57 +214,307 @@ public class MainActivity extends AppCompatActivity implements TextureView.Surfa
     public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
     }
 
-    private void testAudioDecode(final String filename) {
+    private void testAudioDecode(final String filename, final DecoderOptions options) {
         new Thread() {
             public void run() {
-                NopeMD.nativeAudioDecode(filename);
+                NopeMD.nativeAudioDecode(filename, options.maxNbPackets, options.maxNbFrames, options.maxNbSink);
             }
         }.start();
     }
 
-    private void testVideoDecode(final String filename, final int nbDecoders, final int nbFrames) {
+    private static boolean checkOptions(DecoderOptions options) {
+        String error = options.validate();
+        if (error != null)
+            Log.e(TAG, "Ignoring broadcast: " + error);
+        return error == null;
+    }
+
+    private static int[] getIntArrayExtra(Intent intent, String name, int[] defaultValue) {
+        int[] value = intent.getIntArrayExtra(name);
+        return value != null && value.length > 0 ? value : defaultValue;
+    }
+
+    /**
+     * Reserves the memory of each session against the global budget and
+     * returns the reservations of the admitted ones, stopping at the first
+     * refused session.
+     */
+    private static MemoryBudget.Reservation[] reserveSessions(String filename, int nbSessions, int nbQueuedFrames,
+                                                             String swPixFmt, boolean hardware,
+                                                             boolean allowSoftware) {
+        int[] size = MemoryBudget.probeVideoSize(filename);
+        if (size == null) {
+            Log.w(TAG, "Could not estimate session memory, skipping budget enforcement");
+            MemoryBudget.Reservation[] reservations = new MemoryBudget.Reservation[nbSessions];
+            for (int i = 0; i < nbSessions; i++)
+                reservations[i] = MemoryBudget.reserve(0, 0, 0, swPixFmt, hardware, allowSoftware);
+            return reservations;
+        }
+
+        int nbAdmitted = 0;
+        MemoryBudget.Reservation[] reservations = new MemoryBudget.Reservation[nbSessions];
+        for (; nbAdmitted < nbSessions; nbAdmitted++) {
+            MemoryBudget.Reservation reservation = MemoryBudget.reserve(size[0], size[1], nbQueuedFrames,
+                    swPixFmt, hardware, allowSoftware);
+            if (reservation.decision == MemoryBudget.Decision.REFUSED) {
+                Log.e(TAG, "Session " + nbAdmitted + " refused: memory budget exceeded");
+                break;
+            }
+            if (hardware && reservation.decision == MemoryBudget.Decision.SOFTWARE)
+                Log.w(TAG, "Session " + nbAdmitted + " downgraded to software decoding");
+            reservations[nbAdmitted] = reservation;
+        }
+        return Arrays.copyOf(reservations, nbAdmitted);
+    }
+
+    private static JSONObject budgetToJSON(MemoryBudget.Reservation[] reservations, int nbRefused)
+            throws JSONException {
+        JSONArray sessions = new JSONArray();
+        for (MemoryBudget.Reservation reservation : reservations)
+            sessions.put(reservation.toJSON());
+        JSONObject budget = new JSONObject();
+        budget.put("budget_kb", MemoryBudget.getBudget() / 1024);
+        budget.put("sessions", sessions);
+        budget.put("nb_refused", nbRefused);
+        budget.put("calibration", MemoryBudget.getCalibrationJSON());
+        return budget;
+    }
+
+    private static void writeMemoryResults(String outputPath, MemorySampler.Stats memory) {
+        try {
+            JSONObject result = Results.read(outputPath);
+            result.put("memory", memory.toJSON());
+            Results.write(outputPath, result);
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Could not write memory results to " + outputPath, e);
+        }
+    }
+
+    /**
+     * Measures the memory of each admitted session, started on its own
+     * before the timed run so that neither the measurement nor the run
+     * disturbs the other.
+     */
+    private SessionMemoryProbe.Measurement[] measureSessions(String filename, DecoderOptions options,
+                                                             MemoryBudget.Reservation[] reservations) {
+        SessionMemoryProbe.Measurement[] measurements = new SessionMemoryProbe.Measurement[reservations.length];
+        for (int i = 0; i < reservations.length; i++) {
+            boolean hardware = reservations[i].decision == MemoryBudget.Decision.HARDWARE;
+            measurements[i] = SessionMemoryProbe.measure(filename, surfaces[i], options, hardware);
+        }
+        return measurements;
+    }
+
+    /**
+     * Amends the native decode results with the memory figures: the memory
+     * measured for each session is reported next to its reservation and used
+     * to calibrate the budget.
+     */
+    private static void writeDecodeMemoryResults(String outputPath, MemorySampler.Stats memory,
+                                                 MemoryBudget.Reservation[] reservations,
+                                                 SessionMemoryProbe.Measurement[] measurements, int nbRefused) {
+        try {
+            JSONObject result = Results.read(outputPath);
+            JSONArray sessions = result.optJSONArray("sessions");
+            for (int i = 0; i < reservations.length; i++) {
+                if (measurements[i] == null)
+                    continue;
+                MemoryBudget.calibrate(reservations[i], measurements[i].getBytes());
+                if (sessions != null && i < sessions.length())
+                    sessions.getJSONObject(i).put("memory", measurements[i].toJSON());
+            }
+            result.put("memory", memory.toJSON());
+            result.put("budget", budgetToJSON(reservations, nbRefused));
+            Results.write(outputPath, result);
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Could not write memory results to " + outputPath, e);
+        }
+    }
+
+    /**
+     * Writes the results of a run for which every session has been refused,
+     * so that the refusal is not only visible in the logs.
+     */
+    private static void writeRefusedResults(String outputPath, String filename, int nbDecoders,
+                                            DecoderOptions options) {
+        try {
+            JSONObject result = new JSONObject();
+            result.put("model", Build.MODEL);
+            result.put("filename", filename);
+            result.put("nb_decoders", nbDecoders);
+            result.put("nb_active_decoders", 0);
+            result.put("options", options.toJSON());
+            result.put("budget", budgetToJSON(new MemoryBudget.Reservation[0], nbDecoders));
+            Results.write(outputPath, result);
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Could not write results to " + outputPath, e);
+        }
+    }
+
+    private void runNopeMDDecode(String filename, int nbDecoders, int nbFrames, DecoderOptions options,
+                                 boolean allowSoftware, String outputPath) {
+        /*
+         * The reservations are taken under the lock serializing the native
+         * benchmarks so that queued runs do not account for each other
+         */
+        synchronized (NopeMD.class) {
+            MemoryBudget.Reservation[] reservations = reserveSessions(filename, nbDecoders,
+                    options.maxNbFrames + options.maxNbSink, options.swPixFmt,
+                    options.autoHwaccel != 0, allowSoftware);
+            if (reservations.length == 0) {
+                writeRefusedResults(outputPath, filename, nbDecoders, options);
+                return;
+            }
+
+            int[] hwaccels = new int[reservations.length];
+            for (int i = 0; i < reservations.length; i++)
+                hwaccels[i] = reservations[i].decision == MemoryBudget.Decision.HARDWARE ? 1 : 0;
+
+            SessionMemoryProbe.Measurement[] measurements = measureSessions(filename, options, reservations);
+
+            MemorySampler sampler = new MemorySampler();
+            sampler.startSampling();
+            NopeMD.nativeMultipleDecodesToSurfaces(Build.MODEL, filename, surfaces, reservations.length, nbFrames,
+                    options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                    options.autoHwaccel, options.swPixFmt, hwaccels, outputPath);
+            MemorySampler.Stats memory = sampler.stopSampling();
+
+            for (MemoryBudget.Reservation reservation : reservations)
+                MemoryBudget.release(reservation);
+            writeDecodeMemoryResults(outputPath, memory, reservations, measurements,
+                    nbDecoders - reservations.length);
+        }
+    }
+
+    private void runMediaCodecDecode(String filename, int nbDecoders, int nbFrames, boolean allowSoftware,
+                                     String outputPath) {
+        synchronized (NopeMD.class) {
+            MemoryBudget.Reservation[] reservations = reserveSessions(filename, nbDecoders,
+                    0, null, true, allowSoftware);
+
+            MemorySampler sampler = new MemorySampler();
+            sampler.startSampling();
+            MediaCodecVideoDecoder[] ds = new MediaCodecVideoDecoder[reservations.length];
+            Thread[] threads = new Thread[reservations.length];
+            for (int i = 0; i < ds.length; i++)
+                ds[i] = new MediaCodecVideoDecoder(filename, surfaces[i], i, reservations[i]);
+            for (int i = 0; i < ds.length; i++) {
+                final MediaCodecVideoDecoder d = ds[i];
+                threads[i] = new Thread() {
+                    public void run() {
+                        d.run(nbFrames);
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    /* pass */
+                }
+            }
+            MemorySampler.Stats memory = sampler.stopSampling();
+
+            try {
+                JSONArray decoders = new JSONArray();
+                for (int i = 0; i < ds.length; i++) {
+                    MemoryBudget.calibrate(reservations[i], ds[i].getCodecBufferBytes());
+                    decoders.put(ds[i].toJSON());
+                }
+
+                JSONObject result = new JSONObject();
+                result.put("model", Build.MODEL);
+                result.put("filename", filename);
+                result.put("decoder", "mediacodec");
+                result.put("nb_decoders", nbDecoders);
+                result.put("nb_active_decoders", ds.length);
+                result.put("decoders", decoders);
+                result.put("memory", memory.toJSON());
+                result.put("budget", budgetToJSON(reservations, nbDecoders - reservations.length));
+                Log.i(TAG, "Writing: " + result.toString(3) + " to " + outputPath);
+                Results.write(outputPath, result);
+            } catch (JSONException | IOException e) {
+                Log.e(TAG, "Could not write results to " + outputPath, e);
+            }
+        }
+    }
+
+    private void testVideoDecode(final String filename, final int nbDecoders, final int nbFrames,
+                                 final DecoderOptions options, final boolean allowSoftware,
+                                 final boolean mediaCodec) {
         new Thread() {
             public void run() {
                 String basename = filename.substring(filename.lastIndexOf("/") + 1);
-                final String outputPath = Environment.getExternalStorageDirectory().toString() + "/nmd_data/results/" + Build.MODEL + "-" + basename + "-decode-" + nbDecoders + ".json";
-                if (true) {
-                    NopeMD.nativeMultipleDecodesToSurfaces(Build.MODEL, filename, surfaces, nbDecoders, 1000, outputPath);
+                String outputPath = Environment.getExternalStorageDirectory().toString() + "/nmd_data/results/" + Build.MODEL + "-" + basename + "-decode-" + nbDecoders;
+                if (mediaCodec) {
+                    runMediaCodecDecode(filename, nbDecoders, nbFrames, allowSoftware, outputPath + "-mediacodec.json");
                 } else {
-                    MediaCodecVideoDecoder ds[] = new MediaCodecVideoDecoder[nbDecoders];
-                    for (int i = 0; i < nbDecoders; i++)
-                        ds[i] = new MediaCodecVideoDecoder(filename, surfaces[i], i);
-                    for (int i = 0; i < nbDecoders; i++) {
-                        MediaCodecVideoDecoder d = ds[i];
-                        new Thread() {
-                            public void run() {
-                                d.run(1000);
-                            }
-                        }.start();
-                    }
+                    runNopeMDDecode(filename, nbDecoders, nbFrames, options, allowSoftware,
+                            outputPath + "-" + options.getTag() + ".json");
                 }
+            }
+        }.start();
+    }
 
-                //MediaCodecVideoDecoder d = new MediaCodecVideoDecoder(filename, surfaces[0]);
-                //d.run(2);
+    private void testSeek(final String filename, final DecoderOptions options) {
+        new Thread() {
+            public void run() {
+                String basename = filename.substring(filename.lastIndexOf("/") + 1);
+                String outputPath = Environment.getExternalStorageDirectory().toString();
+                outputPath += "/nmd_data/results/";
+                outputPath += Build.MODEL + "-" + basename + "-seek-" + options.getTag() + ".json";
+                MemorySampler sampler = new MemorySampler();
+                sampler.startSampling();
+                NopeMD.nativeSeekAndDecodeToSurfaces(Build.MODEL, filename, surfaces[0],
+                        options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                        options.autoHwaccel, options.swPixFmt, outputPath);
+                writeMemoryResults(outputPath, sampler.stopSampling());
             }
         }.start();
     }
 
-    private void testSeek(final String filename) {
+    private void testSweep(final String filename, final int nbDecoders, final int nbFrames,
+                           final DecoderOptions options, final int[] maxNbPackets,
+                           final int[] maxNbFrames, final int[] maxNbSink) {
+        new Thread() {
+            public void run() {
+                String resultsDir = Environment.getExternalStorageDirectory().toString() + "/nmd_data/results/";
+                QueueDepthSweep sweep = new QueueDepthSweep(Build.MODEL, filename, surfaces, nbDecoders, nbFrames,
+                        options, maxNbPackets, maxNbFrames, maxNbSink, resultsDir);
+                sweep.run();
+            }
+        }.start();
+    }
+
+    private void testPlayback(final String filename, final int nbStreams, final double duration,
+                              final DecoderOptions options, final boolean audio, final boolean javaClock) {
         new Thread() {
             public void run() {
                 String basename = filename.substring(filename.lastIndexOf("/") + 1);
                 String outputPath = Environment.getExternalStorageDirectory().toString();
                 outputPath += "/nmd_data/results/";
-                outputPath += Build.MODEL + "-" + basename + "-seek" + ".json";
-                NopeMD.nativeSeekAndDecodeToSurfaces(Build.MODEL, filename, surfaces[0], outputPath);
+                outputPath += Build.MODEL + "-" + basename + "-playback-" + nbStreams;
+                outputPath += (javaClock ? "-java" : "-native") + ".json";
+                if (javaClock) {
+                    PlaybackClock clock = new PlaybackClock(Build.MODEL, filename, surfaces, nbStreams, duration,
+                            options, audio, outputPath);
+                    clock.start();
+                } else {
+                    NopeMD.nativeSyncedPlaybackToSurfaces(Build.MODEL, filename, surfaces, nbStreams, duration,
+                            options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                            options.autoHwaccel, options.swPixFmt, audio ? 1 : 0, outputPath);
+                }
             }
         }.start();
     }
 
-    private void testRandomSeek(final String filename) {
+    private void testRandomSeek(final String filename, final DecoderOptions options) {
         new Thread() {
             public void run() {
-                NopeMD.nativeRandomSeekAndDecodeToSurface(filename, surfaces[0]);
+                NopeMD.nativeRandomSeekAndDecodeToSurface(filename, surfaces[0],
+                        options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                        options.autoHwaccel, options.swPixFmt);
             }
         }.start();
     }
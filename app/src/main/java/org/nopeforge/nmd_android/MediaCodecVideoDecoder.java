@@ -23,36 +23,100 @@
 package org.nopeforge.nmd_android;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
 public class MediaCodecVideoDecoder extends Thread {
+    public static final String TAG = "MediaCodecVideoDecoder";
+
     private final String filename;
     private final Surface surface;
     private final long index;
+    private final MemoryBudget.Reservation reservation;
+    private final Set<Integer> outputBufferIndices = new HashSet<>();
+    private int outputWidth;
+    private int outputHeight;
+    private int nbDecodedFrames;
+    private double elapsedTime;
 
-    public MediaCodecVideoDecoder(String filename, Surface surface, long index) {
+    public MediaCodecVideoDecoder(String filename, Surface surface, long index,
+                                  MemoryBudget.Reservation reservation) {
         this.filename = filename;
         this.surface = surface;
         this.index = index;
+        this.reservation = reservation;
+    }
+
+    public int getNbCodecBuffers() {
+        return outputBufferIndices.size();
+    }
+
+    /**
+     * Returns the memory held by the codec output buffers seen so far.
+     */
+    public long getCodecBufferBytes() {
+        return getNbCodecBuffers() * MemoryBudget.estimateFrameBytes(outputWidth, outputHeight);
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject decoder = new JSONObject();
+        decoder.put("decision", reservation.decision.name().toLowerCase());
+        decoder.put("nb_frames", nbDecodedFrames);
+        decoder.put("fps", elapsedTime > 0 ? nbDecodedFrames / elapsedTime : 0.0);
+        decoder.put("width", outputWidth);
+        decoder.put("height", outputHeight);
+        decoder.put("nb_codec_buffers", getNbCodecBuffers());
+        decoder.put("codec_buffers_kb", getCodecBufferBytes() / 1024);
+        return decoder;
+    }
+
+    private static MediaCodec createDecoder(MediaFormat format, boolean software) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!software)
+            return MediaCodec.createDecoderByType(mime);
+
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (info.isEncoder() || !Arrays.asList(info.getSupportedTypes()).contains(mime))
+                continue;
+            boolean softwareOnly = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                    ? info.isSoftwareOnly()
+                    : info.getName().startsWith("OMX.google.") || info.getName().startsWith("c2.android.");
+            if (softwareOnly)
+                return MediaCodec.createByCodecName(info.getName());
+        }
+        Log.w(TAG, "No software decoder found for " + mime + ", falling back on the default one");
+        return MediaCodec.createDecoderByType(mime);
     }
 
     public void run(int nbFrames) {
         long timer = System.currentTimeMillis();
+        if (reservation.decision == MemoryBudget.Decision.REFUSED)
+            return;
         try {
             MediaExtractor extractor = new MediaExtractor();
             extractor.setDataSource(filename);
             extractor.selectTrack(0);
 
             MediaFormat format = extractor.getTrackFormat(0);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            MediaCodec codec = MediaCodec.createDecoderByType(mime);
+            outputWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+            outputHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            MediaCodec codec = createDecoder(format, reservation.decision == MemoryBudget.Decision.SOFTWARE);
             codec.configure(format, surface, null, 0);
             codec.start();
             Random random2 = new Random();
@@ -83,12 +147,13 @@ public class MediaCodecVideoDecoder extends Thread {
                         codec.queueInputBuffer(index, 0, bufferSize, extractor.getSampleTime(), 0);
                     }
                 } else {
-                    Log.e("XXX", "Mediacodec returned an error while getting an input buffer: " + index);
+                    Log.e(TAG, "Mediacodec returned an error while getting an input buffer: " + index);
                 }
 
                 index = codec.dequeueOutputBuffer(info, gotOutput ? 12000 : 4000);
                 if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 } else if (index >= 0) {
+                    outputBufferIndices.add(index);
                     if (gotOutput) {
                         codec.releaseOutputBuffer(index, true);
                         if (i == 0) {
@@ -98,17 +163,27 @@ public class MediaCodecVideoDecoder extends Thread {
 
                     }
                     gotOutput = true;
-                } else if (index != MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED && index != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED){
-                    Log.e("XXX", "MediaCodec returned while getting an output buffer: " + index);
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    outputWidth = outputFormat.getInteger(MediaFormat.KEY_WIDTH);
+                    outputHeight = outputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                } else if (index != MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    Log.e(TAG, "MediaCodec returned while getting an output buffer: " + index);
                 }
             }
+            nbDecodedFrames = i;
             codec.flush();
             codec.stop();
             codec.release();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            MemoryBudget.release(reservation);
         }
 
-        Log.e("XXX", "took" + (double)(System.currentTimeMillis() - timer) / 1000.0);
+        elapsedTime = (System.currentTimeMillis() - timer) / 1000.0;
+        Log.i(TAG, "decoder " + index + " took " + elapsedTime + "s");
+        Log.i(TAG, "decoder " + index + " (" + reservation.decision.name().toLowerCase() + "): "
+                + outputBufferIndices.size() + " codec buffers, " + getCodecBufferBytes() / 1024 + " kB");
     }
 }
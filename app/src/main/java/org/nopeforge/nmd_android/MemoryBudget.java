@@ -0,0 +1,236 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Global memory budget shared by all the concurrent decoding sessions.
+ *
+ * Each session reserves an estimate of its decoding buffers before starting.
+ * A session that would exceed the budget with a hardware decoder is either
+ * downgraded to software decoding, if that is expected to be cheaper, or
+ * refused.
+ *
+ * The estimates are scaled by a per decoder type factor, calibrated against
+ * the memory actually measured for the previous sessions.
+ */
+public class MemoryBudget {
+
+    public static final String TAG = "MemoryBudget";
+
+    /* Typical size of the output buffer pool allocated by a hardware decoder */
+    public static final int HW_DECODER_FRAMES = 16;
+    /* Typical number of reference frames held by a software decoder */
+    public static final int SW_DECODER_FRAMES = 6;
+
+    /* Weight of the last measurement in the calibration factors */
+    private static final double CALIBRATION_WEIGHT = 0.5;
+
+    public enum Decision {
+        HARDWARE,
+        SOFTWARE,
+        REFUSED,
+    }
+
+    public static class Reservation {
+        public final Decision decision;
+        public final long estimatedBytes;
+        public final long bytes;
+        private long measuredBytes = -1;
+
+        Reservation(Decision decision, long estimatedBytes, long bytes) {
+            this.decision = decision;
+            this.estimatedBytes = estimatedBytes;
+            this.bytes = bytes;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject reservation = new JSONObject();
+            reservation.put("decision", decision.name().toLowerCase());
+            reservation.put("estimated_kb", estimatedBytes / 1024);
+            reservation.put("reserved_kb", bytes / 1024);
+            if (measuredBytes >= 0)
+                reservation.put("measured_kb", measuredBytes / 1024);
+            return reservation;
+        }
+    }
+
+    private static long budgetBytes;
+    private static long reservedBytes;
+    private static double hardwareScale = 1.0;
+    private static double softwareScale = 1.0;
+
+    /**
+     * Returns a default budget of half the memory currently available to the
+     * system, minus its low memory threshold.
+     */
+    public static long getDefaultBudget(Context context) {
+        ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        return Math.max(info.availMem - info.threshold, 0) / 2;
+    }
+
+    public static synchronized void setBudget(long bytes) {
+        Log.i(TAG, "Memory budget set to " + bytes / 1024 + " kB");
+        budgetBytes = bytes;
+    }
+
+    public static synchronized long getBudget() {
+        return budgetBytes;
+    }
+
+    public static synchronized long getReserved() {
+        return reservedBytes;
+    }
+
+    public static synchronized JSONObject getCalibrationJSON() throws JSONException {
+        JSONObject calibration = new JSONObject();
+        calibration.put("hardware_scale", hardwareScale);
+        calibration.put("software_scale", softwareScale);
+        return calibration;
+    }
+
+    /**
+     * Returns the size of a frame in the given nopemd software pixel format.
+     * nopemd defaults to a packed 32-bit format when none is set.
+     */
+    public static long estimateFrameBytes(int width, int height, String swPixFmt) {
+        if (swPixFmt == null || swPixFmt.equals("rgba") || swPixFmt.equals("bgra"))
+            return (long)width * height * 4;
+        return estimateFrameBytes(width, height);
+    }
+
+    public static long estimateFrameBytes(int width, int height) {
+        /* Decoders output YUV 4:2:0 frames */
+        return (long)width * height * 3 / 2;
+    }
+
+    /**
+     * Estimates the buffers of a session: hardware sessions queue codec
+     * buffers on top of the codec pool, while software sessions hold their
+     * reference frames and queue frames converted to the software pixel
+     * format.
+     */
+    public static long estimateSessionBytes(int width, int height, int nbQueuedFrames, String swPixFmt,
+                                            boolean hardware) {
+        if (hardware)
+            return estimateFrameBytes(width, height) * (nbQueuedFrames + HW_DECODER_FRAMES);
+        return estimateFrameBytes(width, height) * SW_DECODER_FRAMES
+                + estimateFrameBytes(width, height, swPixFmt) * nbQueuedFrames;
+    }
+
+    /**
+     * Returns the video dimensions of the first video track of the file, or
+     * null if they cannot be probed.
+     */
+    public static int[] probeVideoSize(String filename) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(filename);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/"))
+                    return new int[] {
+                            format.getInteger(MediaFormat.KEY_WIDTH),
+                            format.getInteger(MediaFormat.KEY_HEIGHT),
+                    };
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not probe video size of " + filename, e);
+        } finally {
+            extractor.release();
+        }
+        return null;
+    }
+
+    /**
+     * Reserves the memory of a new session, downgrading it to software
+     * decoding if allowed, cheaper and required to fit in the budget. A
+     * budget of 0 means unlimited.
+     */
+    public static synchronized Reservation reserve(int width, int height, int nbQueuedFrames, String swPixFmt,
+                                                   boolean hardware, boolean allowSoftware) {
+        long swEstimate = estimateSessionBytes(width, height, nbQueuedFrames, swPixFmt, false);
+        long swBytes = (long)(swEstimate * softwareScale);
+        if (!hardware) {
+            if (fits(swBytes))
+                return accept(Decision.SOFTWARE, swEstimate, swBytes);
+            return refuse(swEstimate, swBytes);
+        }
+
+        long hwEstimate = estimateSessionBytes(width, height, nbQueuedFrames, swPixFmt, true);
+        long hwBytes = (long)(hwEstimate * hardwareScale);
+        if (fits(hwBytes))
+            return accept(Decision.HARDWARE, hwEstimate, hwBytes);
+        if (allowSoftware && swBytes < hwBytes && fits(swBytes))
+            return accept(Decision.SOFTWARE, swEstimate, swBytes);
+        return refuse(hwEstimate, hwBytes);
+    }
+
+    public static synchronized void release(Reservation reservation) {
+        if (reservation.decision == Decision.REFUSED)
+            return;
+        reservedBytes -= reservation.bytes;
+    }
+
+    /**
+     * Records the memory measured for a session and updates the calibration
+     * factor of its decoder type accordingly.
+     */
+    public static synchronized void calibrate(Reservation reservation, long measuredBytes) {
+        reservation.measuredBytes = measuredBytes;
+        if (reservation.estimatedBytes <= 0 || measuredBytes <= 0)
+            return;
+
+        double scale = measuredBytes / (double)reservation.estimatedBytes;
+        if (reservation.decision == Decision.HARDWARE)
+            hardwareScale += (scale - hardwareScale) * CALIBRATION_WEIGHT;
+        else if (reservation.decision == Decision.SOFTWARE)
+            softwareScale += (scale - softwareScale) * CALIBRATION_WEIGHT;
+    }
+
+    private static boolean fits(long bytes) {
+        return budgetBytes <= 0 || reservedBytes + bytes <= budgetBytes;
+    }
+
+    private static Reservation accept(Decision decision, long estimatedBytes, long bytes) {
+        reservedBytes += bytes;
+        return new Reservation(decision, estimatedBytes, bytes);
+    }
+
+    private static Reservation refuse(long estimatedBytes, long bytes) {
+        Log.w(TAG, "Refusing session of " + bytes / 1024 + " kB: "
+                + reservedBytes / 1024 + "/" + budgetBytes / 1024 + " kB already reserved");
+        return new Reservation(Decision.REFUSED, estimatedBytes, bytes);
+    }
+}
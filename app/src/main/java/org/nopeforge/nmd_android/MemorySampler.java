@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import android.os.Debug;
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Periodically samples the process memory while a benchmark is running and
+ * reports its peak and steady-state usage.
+ *
+ * The RSS (from /proc/self/statm) and the native heap are cheap to read and
+ * are sampled every 100 ms. The total PSS and the graphics/dmabuf usage
+ * require Debug.getMemoryInfo(), which walks the whole smaps of the process
+ * under the mmap lock. They are sampled with an interval starting at 250 ms
+ * and doubling up to 5 s, so that short runs still get samples taken under
+ * load while long runs are not disturbed more than needed. No detailed sample
+ * is taken when the sampling stops, as the sessions have already been
+ * released by then.
+ */
+public class MemorySampler extends Thread {
+    private static final long SAMPLING_INTERVAL_MS = 100;
+    private static final long MIN_DETAILED_SAMPLING_INTERVAL_MS = 250;
+    private static final long MAX_DETAILED_SAMPLING_INTERVAL_MS = 5000;
+
+    private static final int RSS = 0;
+    private static final int NATIVE_HEAP = 1;
+    private static final int TOTAL_PSS = 0;
+    private static final int GRAPHICS = 1;
+
+    private static final long PAGE_SIZE = Os.sysconf(OsConstants._SC_PAGESIZE);
+
+    public static class Stats {
+        public final int peakRssKb;
+        public final int steadyRssKb;
+        public final int peakNativeHeapKb;
+        public final int steadyNativeHeapKb;
+        public final int peakTotalPssKb;
+        public final int steadyTotalPssKb;
+        public final int peakGraphicsKb;
+        public final int steadyGraphicsKb;
+
+        Stats(List<int[]> samples, List<int[]> detailedSamples) {
+            peakRssKb = getPeak(samples, RSS);
+            steadyRssKb = getSteady(samples, RSS);
+            peakNativeHeapKb = getPeak(samples, NATIVE_HEAP);
+            steadyNativeHeapKb = getSteady(samples, NATIVE_HEAP);
+            peakTotalPssKb = getPeak(detailedSamples, TOTAL_PSS);
+            steadyTotalPssKb = getSteady(detailedSamples, TOTAL_PSS);
+            peakGraphicsKb = getPeak(detailedSamples, GRAPHICS);
+            steadyGraphicsKb = getSteady(detailedSamples, GRAPHICS);
+        }
+
+        private static int getPeak(List<int[]> samples, int metric) {
+            int peak = 0;
+            for (int[] sample : samples)
+                peak = Math.max(peak, sample[metric]);
+            return peak;
+        }
+
+        private static int getSteady(List<int[]> samples, int metric) {
+            /* The first half of the run is considered as warm-up */
+            int start = samples.size() / 2;
+            if (start >= samples.size())
+                return 0;
+            long sum = 0;
+            for (int i = start; i < samples.size(); i++)
+                sum += samples.get(i)[metric];
+            return (int)(sum / (samples.size() - start));
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject stats = new JSONObject();
+            stats.put("peak_rss_kb", peakRssKb);
+            stats.put("steady_rss_kb", steadyRssKb);
+            stats.put("peak_native_heap_kb", peakNativeHeapKb);
+            stats.put("steady_native_heap_kb", steadyNativeHeapKb);
+            stats.put("peak_total_pss_kb", peakTotalPssKb);
+            stats.put("steady_total_pss_kb", steadyTotalPssKb);
+            stats.put("peak_graphics_kb", peakGraphicsKb);
+            stats.put("steady_graphics_kb", steadyGraphicsKb);
+            return stats;
+        }
+    }
+
+    private volatile boolean stopped;
+    private final List<int[]> samples = new ArrayList<>();
+    private final List<int[]> detailedSamples = new ArrayList<>();
+    private long lastDetailedSampleTime;
+    private long detailedSamplingIntervalMs = MIN_DETAILED_SAMPLING_INTERVAL_MS;
+
+    public void startSampling() {
+        sample();
+        sampleDetailed();
+        start();
+    }
+
+    public Stats stopSampling() {
+        stopped = true;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            /* pass */
+        }
+        sample();
+        synchronized (this) {
+            return new Stats(samples, detailedSamples);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            sample();
+            if (System.currentTimeMillis() - lastDetailedSampleTime >= detailedSamplingIntervalMs) {
+                sampleDetailed();
+                detailedSamplingIntervalMs = Math.min(detailedSamplingIntervalMs * 2,
+                        MAX_DETAILED_SAMPLING_INTERVAL_MS);
+            }
+            try {
+                Thread.sleep(SAMPLING_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                /* pass */
+            }
+        }
+    }
+
+    /**
+     * Returns the resident set size of the process, or 0 if it cannot be read.
+     */
+    public static int readRssKb() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/statm"))) {
+            String[] fields = reader.readLine().split(" ");
+            return (int)(Long.parseLong(fields[1]) * PAGE_SIZE / 1024);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    public static int readNativeHeapKb() {
+        return (int)(Debug.getNativeHeapAllocatedSize() / 1024);
+    }
+
+    /**
+     * Returns the graphics memory (gralloc/dmabuf buffers, GL) accounted to the
+     * process. This is expensive, see the class documentation.
+     */
+    public static int readGraphicsKb() {
+        Debug.MemoryInfo info = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(info);
+        return parseKb(info.getMemoryStat("summary.graphics"));
+    }
+
+    private static int parseKb(String value) {
+        if (value == null)
+            return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private synchronized void sample() {
+        int[] sample = new int[2];
+        sample[RSS] = readRssKb();
+        sample[NATIVE_HEAP] = readNativeHeapKb();
+        samples.add(sample);
+    }
+
+    private synchronized void sampleDetailed() {
+        Debug.MemoryInfo info = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(info);
+
+        int[] sample = new int[2];
+        sample[TOTAL_PSS] = info.getTotalPss();
+        sample[GRAPHICS] = parseKb(info.getMemoryStat("summary.graphics"));
+        detailedSamples.add(sample);
+        lastDetailedSampleTime = System.currentTimeMillis();
+    }
+}
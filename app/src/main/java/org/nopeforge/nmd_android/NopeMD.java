@@ -96,15 +96,79 @@ class NopeMD {
                                                                            Surface[] surfaces,
                                                                            int nbSurfaces,
                                                                            int nbFrames,
+                                                                           int maxNbPackets,
+                                                                           int maxNbFrames,
+                                                                           int maxNbSink,
+                                                                           int autoHwaccel,
+                                                                           String swPixFmt,
+                                                                           int[] hwaccels,
                                                                            String outputPath);
 
+    public native static long nativeSessionCreate(String filename,
+                                                  Surface surface,
+                                                  int maxNbPackets,
+                                                  int maxNbFrames,
+                                                  int maxNbSink,
+                                                  int autoHwaccel,
+                                                  String swPixFmt);
+
+    public native static void nativeSessionDestroy(long handle);
+
     public native static synchronized void nativeSeekAndDecodeToSurfaces(String model,
                                                                          String filename,
                                                                          Surface surface,
+                                                                         int maxNbPackets,
+                                                                         int maxNbFrames,
+                                                                         int maxNbSink,
+                                                                         int autoHwaccel,
+                                                                         String swPixFmt,
                                                                          String outputPath);
 
     public native static synchronized void nativeRandomSeekAndDecodeToSurface(String filename,
-                                                                              Surface surface);
+                                                                              Surface surface,
+                                                                              int maxNbPackets,
+                                                                              int maxNbFrames,
+                                                                              int maxNbSink,
+                                                                              int autoHwaccel,
+                                                                              String swPixFmt);
+
+    public native static synchronized void nativeAudioDecode(String filename,
+                                                             int maxNbPackets,
+                                                             int maxNbFrames,
+                                                             int maxNbSink);
+
+    public native static synchronized void nativeSyncedPlaybackToSurfaces(String model,
+                                                                          String filename,
+                                                                          Surface[] surfaces,
+                                                                          int nbSurfaces,
+                                                                          double duration,
+                                                                          int maxNbPackets,
+                                                                          int maxNbFrames,
+                                                                          int maxNbSink,
+                                                                          int autoHwaccel,
+                                                                          String swPixFmt,
+                                                                          int audio,
+                                                                          String outputPath);
+
+    public native static synchronized long nativePlaybackCreate(String filename,
+                                                                Surface[] surfaces,
+                                                                int nbSurfaces,
+                                                                double duration,
+                                                                int maxNbPackets,
+                                                                int maxNbFrames,
+                                                                int maxNbSink,
+                                                                int autoHwaccel,
+                                                                String swPixFmt,
+                                                                int audio);
+
+    /*
+     * Not synchronized: it is called on every vsync and would otherwise stall
+     * behind any benchmark holding the class lock. The session is only
+     * touched from the clock thread.
+     */
+    public native static int nativePlaybackRender(long handle, long frameTimeNanos);
 
-    public native static synchronized void nativeAudioDecode(String filename);
+    public native static synchronized void nativePlaybackDestroy(long handle,
+                                                                 String model,
+                                                                 String outputPath);
 }
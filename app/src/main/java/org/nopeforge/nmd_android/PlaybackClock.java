@@ -0,0 +1,81 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+
+/**
+ * Plays several streams in sync, driven by the Choreographer vsync on a
+ * dedicated looper thread. Each vsync presents the frames matching the master
+ * clock (the vsync time relative to the first one) through the native
+ * playback session, which accounts for the late, dropped and repeated frames.
+ */
+public class PlaybackClock implements Choreographer.FrameCallback {
+
+    public static final String TAG = "PlaybackClock";
+
+    private final String model;
+    private final String outputPath;
+    private final HandlerThread thread;
+    private long handle;
+
+    public PlaybackClock(String model, String filename, Surface[] surfaces, int nbSurfaces, double duration,
+                         DecoderOptions options, boolean audio, String outputPath) {
+        this.model = model;
+        this.outputPath = outputPath;
+        this.thread = new HandlerThread(TAG);
+        this.handle = NopeMD.nativePlaybackCreate(filename, surfaces, nbSurfaces, duration,
+                options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                options.autoHwaccel, options.swPixFmt, audio ? 1 : 0);
+    }
+
+    public void start() {
+        if (handle == 0) {
+            Log.e(TAG, "Could not create playback session");
+            return;
+        }
+        thread.start();
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(PlaybackClock.this);
+            }
+        });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (NopeMD.nativePlaybackRender(handle, frameTimeNanos) == 0) {
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+
+        NopeMD.nativePlaybackDestroy(handle, model, outputPath);
+        handle = 0;
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import android.util.Log;
+import android.view.Surface;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the decode and seek benchmarks over a grid of nopemd queue depths
+ * (max_nb_packets, max_nb_frames, max_nb_sink) and reports, for each
+ * workload, the Pareto front of first frame latency vs sustained fps vs
+ * peak memory.
+ */
+public class QueueDepthSweep {
+
+    public static final String TAG = "QueueDepthSweep";
+
+    public static final int[] DEFAULT_MAX_NB_PACKETS = {1, 2, 5, 10};
+    public static final int[] DEFAULT_MAX_NB_FRAMES = {1, 2, 4};
+    public static final int[] DEFAULT_MAX_NB_SINK = {1, 2, 4};
+
+    private static class Point {
+        final String workload;
+        final DecoderOptions options;
+        final double firstFrameTime;
+        final double fps;
+        final MemorySampler.Stats memory;
+        final int peakRssKb;
+
+        Point(String workload, DecoderOptions options, double firstFrameTime, double fps, MemorySampler.Stats memory) {
+            this.workload = workload;
+            this.options = options;
+            this.firstFrameTime = firstFrameTime;
+            this.fps = fps;
+            this.memory = memory;
+            this.peakRssKb = memory.peakRssKb;
+        }
+
+        boolean isValid() {
+            return firstFrameTime >= 0 && fps > 0;
+        }
+
+        boolean dominates(Point other) {
+            if (firstFrameTime > other.firstFrameTime || fps < other.fps || peakRssKb > other.peakRssKb)
+                return false;
+            return firstFrameTime < other.firstFrameTime || fps > other.fps || peakRssKb < other.peakRssKb;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject point = new JSONObject();
+            point.put("options", options.toJSON());
+            point.put("first_frame_time", firstFrameTime);
+            point.put("fps", fps);
+            point.put("peak_rss_kb", peakRssKb);
+            point.put("memory", memory.toJSON());
+            return point;
+        }
+    }
+
+    private final String model;
+    private final String filename;
+    private final Surface[] surfaces;
+    private final int nbDecoders;
+    private final int nbFrames;
+    private final DecoderOptions baseOptions;
+    private final int[] maxNbPackets;
+    private final int[] maxNbFrames;
+    private final int[] maxNbSink;
+    private final String resultsDir;
+
+    public QueueDepthSweep(String model, String filename, Surface[] surfaces, int nbDecoders, int nbFrames,
+                           DecoderOptions baseOptions, int[] maxNbPackets, int[] maxNbFrames, int[] maxNbSink,
+                           String resultsDir) {
+        this.model = model;
+        this.filename = filename;
+        this.surfaces = surfaces;
+        this.nbDecoders = nbDecoders;
+        this.nbFrames = nbFrames;
+        this.baseOptions = baseOptions;
+        this.maxNbPackets = maxNbPackets;
+        this.maxNbFrames = maxNbFrames;
+        this.maxNbSink = maxNbSink;
+        this.resultsDir = resultsDir;
+    }
+
+    public void run() {
+        String basename = filename.substring(filename.lastIndexOf("/") + 1);
+        String prefix = resultsDir + model + "-" + basename;
+
+        List<Point> decodePoints = new ArrayList<>();
+        List<Point> seekPoints = new ArrayList<>();
+        for (int p : maxNbPackets) {
+            for (int f : maxNbFrames) {
+                for (int s : maxNbSink) {
+                    DecoderOptions options = baseOptions.withQueueDepths(p, f, s);
+                    String error = options.validate();
+                    if (error != null) {
+                        Log.e(TAG, "Skipping sweep step " + options.getTag() + ": " + error);
+                        continue;
+                    }
+                    Log.i(TAG, "Running sweep step " + options.getTag());
+
+                    String decodePath = prefix + "-decode-" + nbDecoders + "-" + options.getTag() + ".json";
+                    new File(decodePath).delete();
+                    MemorySampler sampler = new MemorySampler();
+                    sampler.startSampling();
+                    NopeMD.nativeMultipleDecodesToSurfaces(model, filename, surfaces, nbDecoders, nbFrames,
+                            options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                            options.autoHwaccel, options.swPixFmt, null, decodePath);
+                    addPoint(decodePoints, "decode", options, decodePath, sampler.stopSampling());
+
+                    String seekPath = prefix + "-seek-" + options.getTag() + ".json";
+                    new File(seekPath).delete();
+                    sampler = new MemorySampler();
+                    sampler.startSampling();
+                    NopeMD.nativeSeekAndDecodeToSurfaces(model, filename, surfaces[0],
+                            options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                            options.autoHwaccel, options.swPixFmt, seekPath);
+                    addPoint(seekPoints, "seek", options, seekPath, sampler.stopSampling());
+                }
+            }
+        }
+
+        String outputPath = prefix + "-sweep-" + nbDecoders + ".json";
+        try {
+            JSONObject result = new JSONObject();
+            result.put("model", model);
+            result.put("filename", filename);
+            result.put("nb_decoders", nbDecoders);
+            result.put("decode", workloadToJSON(decodePoints));
+            result.put("seek", workloadToJSON(seekPoints));
+
+            Log.i(TAG, "Writing: " + result.toString(3) + " to " + outputPath);
+            Results.write(outputPath, result);
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Could not write sweep results to " + outputPath, e);
+        }
+    }
+
+    private static void addPoint(List<Point> points, String workload, DecoderOptions options,
+                                 String resultPath, MemorySampler.Stats memory) {
+        try {
+            JSONObject result = Results.read(resultPath);
+            result.put("memory", memory.toJSON());
+            Results.write(resultPath, result);
+            points.add(new Point(workload, options,
+                    result.getDouble("first_frame_time"),
+                    result.getDouble("fps"),
+                    memory));
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Could not read " + workload + " results from " + resultPath, e);
+        }
+    }
+
+    private static List<Point> getParetoFront(List<Point> points) {
+        List<Point> front = new ArrayList<>();
+        for (Point candidate : points) {
+            if (!candidate.isValid())
+                continue;
+            boolean dominated = false;
+            for (Point other : points) {
+                if (other != candidate && other.isValid() && other.dominates(candidate)) {
+                    dominated = true;
+                    break;
+                }
+            }
+            if (!dominated)
+                front.add(candidate);
+        }
+        return front;
+    }
+
+    private static JSONObject workloadToJSON(List<Point> points) throws JSONException {
+        JSONArray all = new JSONArray();
+        for (Point point : points)
+            all.put(point.toJSON());
+
+        JSONArray pareto = new JSONArray();
+        for (Point point : getParetoFront(points)) {
+            pareto.put(point.toJSON());
+            Log.i(TAG, "Pareto " + point.workload + " " + point.options.getTag()
+                    + ": first_frame_time=" + point.firstFrameTime
+                    + " fps=" + point.fps
+                    + " peak_rss_kb=" + point.peakRssKb);
+        }
+
+        JSONObject workload = new JSONObject();
+        workload.put("points", all);
+        workload.put("pareto_front", pareto);
+        return workload;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Helpers to read back and amend the JSON result files written by the
+ * benchmarks.
+ */
+public class Results {
+
+    public static JSONObject read(String path) throws IOException, JSONException {
+        byte[] data = Files.readAllBytes(new File(path).toPath());
+        return new JSONObject(new String(data, StandardCharsets.UTF_8));
+    }
+
+    public static void write(String path, JSONObject result) throws IOException, JSONException {
+        try (FileWriter writer = new FileWriter(path)) {
+            writer.write(result.toString(3));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Matthieu Bouron <matthieu.bouron@gmail.com>
+ * Copyright 2023 Nope Forge
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.nopeforge.nmd_android;
+
+import android.util.Log;
+import android.view.Surface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures the memory held by a single nopemd session, started and warmed up
+ * on its own so that the measurement is not polluted by other sessions.
+ *
+ * Hardware sessions mostly hold codec buffers, which are gralloc/dmabuf
+ * allocations not mapped in the process RSS: their cost is the growth of the
+ * graphics memory. Software sessions decode into the process memory: their
+ * cost is the growth of the RSS.
+ */
+public class SessionMemoryProbe {
+
+    public static final String TAG = "SessionMemoryProbe";
+
+    public static class Measurement {
+        public final boolean hardware;
+        public final int rssKb;
+        public final int nativeHeapKb;
+        public final int graphicsKb;
+
+        Measurement(boolean hardware, int rssKb, int nativeHeapKb, int graphicsKb) {
+            this.hardware = hardware;
+            this.rssKb = rssKb;
+            this.nativeHeapKb = nativeHeapKb;
+            this.graphicsKb = graphicsKb;
+        }
+
+        /**
+         * Returns the memory held by the session for its decoder type.
+         */
+        public long getBytes() {
+            return (hardware ? graphicsKb : rssKb) * 1024L;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject measurement = new JSONObject();
+            measurement.put("rss_kb", rssKb);
+            measurement.put("native_heap_kb", nativeHeapKb);
+            measurement.put("graphics_kb", graphicsKb);
+            return measurement;
+        }
+    }
+
+    /**
+     * Returns the memory measured for a session decoding the file with the
+     * given options, or null if the session could not be started.
+     */
+    public static Measurement measure(String filename, Surface surface, DecoderOptions options,
+                                      boolean hardware) {
+        int rss = MemorySampler.readRssKb();
+        int nativeHeap = MemorySampler.readNativeHeapKb();
+        int graphics = MemorySampler.readGraphicsKb();
+
+        long handle = NopeMD.nativeSessionCreate(filename, surface,
+                options.maxNbPackets, options.maxNbFrames, options.maxNbSink,
+                hardware ? 1 : 0, options.swPixFmt);
+        if (handle == 0) {
+            Log.e(TAG, "Could not start session on " + filename);
+            return null;
+        }
+
+        Measurement measurement = new Measurement(hardware,
+                MemorySampler.readRssKb() - rss,
+                MemorySampler.readNativeHeapKb() - nativeHeap,
+                MemorySampler.readGraphicsKb() - graphics);
+        NopeMD.nativeSessionDestroy(handle);
+        return measurement;
+    }
+}
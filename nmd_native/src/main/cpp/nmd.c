@@ -20,11 +20,17 @@
  * under the License.
  */
 
+#include <errno.h>
+#include <inttypes.h>
 #include <jni.h>
+#include <math.h>
 #include <pthread.h>
+#include <time.h>
 #include <unistd.h>
 
+#include <android/choreographer.h>
 #include <android/log.h>
+#include <android/looper.h>
 
 #include <libavformat/avformat.h>
 #include <libavcodec/jni.h>
@@ -99,6 +105,138 @@ static void nmd_android_log(void *arg, int level, const char *filename, int ln,
     __android_log_vprint(android_log_level, LOG_TAG, fmt, vl);
 }
 
+struct NopeMD_options {
+    int max_nb_packets;
+    int max_nb_frames;
+    int max_nb_sink;
+    int auto_hwaccel;
+    int sw_pix_fmt;
+};
+
+static const struct {
+    const char *name;
+    int pix_fmt;
+} sw_pix_fmt_mapping[] = {
+        { "rgba", NMD_PIXFMT_RGBA },
+        { "bgra", NMD_PIXFMT_BGRA },
+};
+
+#define SW_PIX_FMT_UNSET   -1
+#define SW_PIX_FMT_INVALID -2
+
+static int get_sw_pix_fmt(JNIEnv *env, jstring sw_pix_fmt_)
+{
+    if (!sw_pix_fmt_)
+        return SW_PIX_FMT_UNSET;
+
+    int pix_fmt = SW_PIX_FMT_UNSET;
+    const char *sw_pix_fmt = (*env)->GetStringUTFChars(env, sw_pix_fmt_, 0);
+    for (int i = 0; i < sizeof(sw_pix_fmt_mapping)/sizeof(*sw_pix_fmt_mapping); i++) {
+        if (!strcmp(sw_pix_fmt, sw_pix_fmt_mapping[i].name)) {
+            pix_fmt = sw_pix_fmt_mapping[i].pix_fmt;
+            break;
+        }
+    }
+    if (pix_fmt < 0) {
+        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Unsupported sw_pix_fmt: %s", sw_pix_fmt);
+        pix_fmt = SW_PIX_FMT_INVALID;
+    }
+    (*env)->ReleaseStringUTFChars(env, sw_pix_fmt_, sw_pix_fmt);
+
+    return pix_fmt;
+}
+
+static const char *get_sw_pix_fmt_name(int pix_fmt)
+{
+    for (int i = 0; i < sizeof(sw_pix_fmt_mapping)/sizeof(*sw_pix_fmt_mapping); i++) {
+        if (pix_fmt == sw_pix_fmt_mapping[i].pix_fmt)
+            return sw_pix_fmt_mapping[i].name;
+    }
+    return NULL;
+}
+
+/*
+ * Fills the options from the arguments of a JNI entry point, returns < 0 if
+ * one of them is invalid
+ */
+static int get_options(JNIEnv *env,
+                       struct NopeMD_options *options,
+                       jint max_nb_packets,
+                       jint max_nb_frames,
+                       jint max_nb_sink,
+                       jint auto_hwaccel,
+                       jstring sw_pix_fmt)
+{
+    options->max_nb_packets = max_nb_packets;
+    options->max_nb_frames  = max_nb_frames;
+    options->max_nb_sink    = max_nb_sink;
+    options->auto_hwaccel   = auto_hwaccel;
+    options->sw_pix_fmt     = get_sw_pix_fmt(env, sw_pix_fmt);
+    return options->sw_pix_fmt == SW_PIX_FMT_INVALID ? -1 : 0;
+}
+
+static int64_t get_monotonic_time(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static void wait_until(int64_t deadline)
+{
+    struct timespec ts = {
+        .tv_sec  = deadline / 1000000000LL,
+        .tv_nsec = deadline % 1000000000LL,
+    };
+    while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, NULL) == EINTR)
+        ;
+}
+
+#define PACING_PERIOD (1000000000LL / 60)
+
+/*
+ * Waits for the next tick of a clock started at start_time, skipping the
+ * ticks that have already been missed, and returns its time
+ */
+static int64_t wait_next_tick(int64_t start_time, int64_t period)
+{
+    int64_t elapsed = get_monotonic_time() - start_time;
+    int64_t next_tick = start_time + (elapsed / period + 1) * period;
+    wait_until(next_tick);
+    return next_tick;
+}
+
+static int set_options(struct nmd_ctx *ctx, const struct NopeMD_options *options)
+{
+    struct {
+        const char *key;
+        int value;
+    } const values[] = {
+            { "max_nb_packets", options->max_nb_packets },
+            { "max_nb_frames",  options->max_nb_frames },
+            { "max_nb_sink",    options->max_nb_sink },
+            { "auto_hwaccel",   options->auto_hwaccel },
+    };
+
+    for (int i = 0; i < sizeof(values)/sizeof(*values); i++) {
+        int ret = nmd_set_option(ctx, values[i].key, values[i].value);
+        if (ret < 0) {
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Could not set %s to %d", values[i].key, values[i].value);
+            return ret;
+        }
+    }
+
+    if (options->sw_pix_fmt >= 0) {
+        int ret = nmd_set_option(ctx, "sw_pix_fmt", options->sw_pix_fmt);
+        if (ret < 0) {
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Could not set sw_pix_fmt to %d", options->sw_pix_fmt);
+            return ret;
+        }
+    }
+
+    return 0;
+}
+
 JNIEXPORT void JNICALL
 Java_org_nopeforge_NopeMD_1android_NopeMD_nativeDecodeAllFramesToSurface(JNIEnv *env,
                                                                              jclass type,
@@ -240,6 +378,101 @@ struct NopeMD_stat {
     double *frame_decode_times;
 };
 
+static char *options_concat(char *dst, const struct NopeMD_options *options)
+{
+    dst = str_concat(dst, "   \"options\": {\n");
+    dst = str_concat(dst, "       \"max_nb_packets\": %d,\n", options->max_nb_packets);
+    dst = str_concat(dst, "       \"max_nb_frames\": %d,\n", options->max_nb_frames);
+    dst = str_concat(dst, "       \"max_nb_sink\": %d,\n", options->max_nb_sink);
+    dst = str_concat(dst, "       \"auto_hwaccel\": %d,\n", options->auto_hwaccel);
+    const char *sw_pix_fmt = get_sw_pix_fmt_name(options->sw_pix_fmt);
+    if (sw_pix_fmt)
+        dst = str_concat(dst, "       \"sw_pix_fmt\": \"%s\"\n", sw_pix_fmt);
+    else
+        dst = str_concat(dst, "       \"sw_pix_fmt\": null\n");
+    dst = str_concat(dst, "   },\n");
+    return dst;
+}
+
+struct NopeMD_session {
+    jobject surface;
+    struct nmd_ctx *ctx;
+};
+
+static void session_freep(JNIEnv *env, struct NopeMD_session **sp)
+{
+    struct NopeMD_session *s = *sp;
+    if (!s)
+        return;
+
+    if (s->ctx)
+        nmd_freep(&s->ctx);
+    if (s->surface)
+        (*env)->DeleteGlobalRef(env, s->surface);
+    free(s);
+    *sp = NULL;
+}
+
+/*
+ * Starts a single decoding session and warms it up until its queues are
+ * filled, so that the caller can measure the memory it holds in isolation
+ * from any other session. Returns 0 on error.
+ */
+JNIEXPORT jlong JNICALL
+Java_org_nopeforge_nmd_1android_NopeMD_nativeSessionCreate(JNIEnv *env,
+                                                             jclass type,
+                                                             jstring filename_,
+                                                             jobject surface,
+                                                             jint max_nb_packets,
+                                                             jint max_nb_frames,
+                                                             jint max_nb_sink,
+                                                             jint auto_hwaccel,
+                                                             jstring sw_pix_fmt)
+{
+    struct NopeMD_options options;
+    if (get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, auto_hwaccel, sw_pix_fmt) < 0)
+        return 0;
+
+    struct NopeMD_session *s = calloc(1, sizeof(*s));
+    if (!s)
+        return 0;
+
+    const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
+    s->surface = (*env)->NewGlobalRef(env, surface);
+    s->ctx = nmd_create(filename);
+    (*env)->ReleaseStringUTFChars(env, filename_, filename);
+    if (!s->ctx || set_options(s->ctx, &options) < 0) {
+        session_freep(env, &s);
+        return 0;
+    }
+    nmd_set_option(s->ctx, "opaque", &s->surface);
+    nmd_set_log_callback(s->ctx, NULL, nmd_android_log);
+    nmd_start(s->ctx);
+
+    const int nb_frames = 1 + options.max_nb_frames + options.max_nb_sink;
+    for (int i = 0; i < nb_frames; i++) {
+        struct nmd_frame *frame = nmd_get_next_frame(s->ctx);
+        if (!frame)
+            break;
+        if (frame->pix_fmt == NMD_PIXFMT_MEDIACODEC) {
+            nmd_mc_frame_render_and_releasep(&frame);
+        } else {
+            nmd_frame_releasep(&frame);
+        }
+    }
+
+    return (jlong)(intptr_t)s;
+}
+
+JNIEXPORT void JNICALL
+Java_org_nopeforge_nmd_1android_NopeMD_nativeSessionDestroy(JNIEnv *env,
+                                                              jclass type,
+                                                              jlong handle)
+{
+    struct NopeMD_session *s = (struct NopeMD_session *)(intptr_t)handle;
+    session_freep(env, &s);
+}
+
 JNIEXPORT void JNICALL
 Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *env,
                                                                               jclass type,
@@ -248,8 +481,18 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
                                                                               jobjectArray surfaces,
                                                                               jint nb_surfaces,
                                                                               jint nb_frames,
+                                                                              jint max_nb_packets,
+                                                                              jint max_nb_frames,
+                                                                              jint max_nb_sink,
+                                                                              jint auto_hwaccel,
+                                                                              jstring sw_pix_fmt,
+                                                                              jintArray hwaccels_,
                                                                               jstring output_path_)
 {
+    struct NopeMD_options options;
+    if (get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, auto_hwaccel, sw_pix_fmt) < 0)
+        return;
+
     const char *model = (*env)->GetStringUTFChars(env, model_, 0);
     const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
     const char *output_path = (*env)->GetStringUTFChars(env, output_path_, 0);
@@ -261,18 +504,29 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
         (*env)->DeleteLocalRef(env, surface);
     }
 
+    jint *hwaccels = NULL;
+    if (hwaccels_) {
+        if ((*env)->GetArrayLength(env, hwaccels_) >= nb_surfaces)
+            hwaccels = (*env)->GetIntArrayElements(env, hwaccels_, NULL);
+        else
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Ignoring hwaccels: not enough elements");
+    }
+
+    int ret = 0;
+    int64_t start_timer = av_gettime();
     struct nmd_ctx **players = calloc(nb_surfaces, sizeof(struct NopeMD_ctx *));
     for (int i = 0; i < nb_surfaces; i++) {
         struct nmd_ctx *ctx = nmd_create(filename);
-        nmd_set_option(ctx, "max_nb_packets", 10);
-        nmd_set_option(ctx, "max_nb_frames", 1);
-        nmd_set_option(ctx, "max_nb_sink", 1);
-        nmd_set_option(ctx, "auto_hwaccel", 1);
+        players[i] = ctx;
+        ret = ctx ? set_options(ctx, &options) : -1;
+        if (ret >= 0 && hwaccels)
+            ret = nmd_set_option(ctx, "auto_hwaccel", hwaccels[i]);
+        if (ret < 0)
+            goto end;
         nmd_set_option(ctx, "opaque", &surface_references[i]);
         nmd_set_log_callback(ctx, NULL, nmd_android_log);
         nmd_start(ctx);
         nmd_seek(ctx, i * 20);
-        players[i] = ctx;
     }
 
     struct NopeMD_stat *player_stats = calloc(nb_surfaces, sizeof(*player_stats));
@@ -295,6 +549,7 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
 
     int cur_frames = 0;
     int got_first_frames = 0;
+    double first_frame_time = -1.0;
     while (cur_frames < nb_frames) {
         int64_t local_timer = av_gettime();
         if (!got_first_frames) {
@@ -308,6 +563,7 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
             if (start) {
                 got_first_frames = 1;
                 global_timer = av_gettime();
+                first_frame_time = (global_timer - start_timer) / (double)1000000;
             }
         }
 
@@ -384,8 +640,18 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
     json_data = str_concat(json_data, "   \"filename\": \"%s\",\n", filename);
     json_data = str_concat(json_data, "   \"nb_decoders\": %d,\n", nb_surfaces);
     json_data = str_concat(json_data, "   \"nb_active_decoders\": %d,\n", nb_active_decoders);
+    json_data = options_concat(json_data, &options);
     json_data = str_concat(json_data, "   \"nb_frames\": %d,\n", nb_frames);
+    json_data = str_concat(json_data, "   \"first_frame_time\": %f,\n", first_frame_time);
     json_data = str_concat(json_data, "   \"fps\": %f,\n", nb_frames * 1000000LL / (double)global_timer);
+    json_data = str_concat(json_data, "   \"sessions\": [\n");
+    for (int i = 0; i < nb_surfaces; i++) {
+    json_data = str_concat(json_data, "       { \"auto_hwaccel\": %d, \"nb_frames\": %d }%s\n",
+                           hwaccels ? hwaccels[i] : options.auto_hwaccel,
+                           (int)player_stats[i].nb_frames,
+                           i < nb_surfaces - 1 ? "," : "");
+    }
+    json_data = str_concat(json_data, "   ],\n");
     json_data = str_concat(json_data, "   \"decode_times\": [\n");
     for (int i = 0; i < nb_frames; i++) {
     json_data = str_concat(json_data, "       %f%s", global_frame_decode_times[i], i < nb_frames - 1 ? "," : "");
@@ -409,6 +675,7 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
     }
     free(player_stats);
 
+end:
     for (int i = 0; i < nb_surfaces; i ++) {
         if (players[i])
             nmd_freep(&players[i]);
@@ -421,6 +688,9 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeMultipleDecodesToSurfaces(JNIEnv *e
     }
     free(surface_references);
 
+    if (hwaccels)
+        (*env)->ReleaseIntArrayElements(env, hwaccels_, hwaccels, JNI_ABORT);
+
     (*env)->ReleaseStringUTFChars(env, filename_, filename);
     (*env)->ReleaseStringUTFChars(env, model_, model);
     (*env)->ReleaseStringUTFChars(env, output_path_, output_path);
@@ -432,19 +702,25 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeSeekAndDecodeToSurfaces(JNIEnv *env
                                                                         jstring model_,
                                                                         jstring filename_,
                                                                         jobject surface_,
+                                                                        jint max_nb_packets,
+                                                                        jint max_nb_frames,
+                                                                        jint max_nb_sink,
+                                                                        jint auto_hwaccel,
+                                                                        jstring sw_pix_fmt,
                                                                         jstring output_path_) {
-
+    struct NopeMD_options options;
+    if (get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, auto_hwaccel, sw_pix_fmt) < 0)
+        return;
 
     const char *model = (*env)->GetStringUTFChars(env, model_, 0);
     const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
     jobject surface = (*env)->NewGlobalRef(env, surface_);
     const char *output_path = (*env)->GetStringUTFChars(env, output_path_, 0);
 
+    int64_t start_timer = av_gettime();
     struct nmd_ctx *player = nmd_create(filename);
-    nmd_set_option(player, "max_nb_packets", 1);
-    nmd_set_option(player, "max_nb_frames", 1);
-    nmd_set_option(player, "max_nb_sink", 1);
-    nmd_set_option(player, "auto_hwaccel", 1);
+    if (!player || set_options(player, &options) < 0)
+        goto end;
     nmd_set_option(player, "opaque", &surface);
     nmd_set_log_callback(player, NULL, nmd_android_log);
     nmd_start(player);
@@ -467,6 +743,7 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeSeekAndDecodeToSurfaces(JNIEnv *env
 
     int frame_count = 0;
     double average_seek_time = 0.0;
+    double first_frame_time = -1.0;
     for (int i = 0; i < nb_seek_positions; i++) {
         int64_t timer = av_gettime();
         nmd_seek(player, seek_positions[i]);
@@ -474,6 +751,8 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeSeekAndDecodeToSurfaces(JNIEnv *env
         if (frame) {
             float ts = frame->ts;
             frame_count++;
+            if (first_frame_time < 0)
+                first_frame_time = (av_gettime() - start_timer) / 1000000.0;
             if (frame->pix_fmt == NMD_PIXFMT_MEDIACODEC) {
                 nmd_mc_frame_render_and_releasep(&frame);
             } else {
@@ -492,8 +771,11 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeSeekAndDecodeToSurfaces(JNIEnv *env
     json_data = str_concat(json_data, "{\n");
     json_data = str_concat(json_data, "   \"model\": \"%s\",\n", model);
     json_data = str_concat(json_data, "   \"filename\": \"%s\",\n", filename);
+    json_data = options_concat(json_data, &options);
     json_data = str_concat(json_data, "   \"nb_frames\": %d,\n", frame_count);
+    json_data = str_concat(json_data, "   \"first_frame_time\": %f,\n", first_frame_time);
     json_data = str_concat(json_data, "   \"avg_seek_time\": %f,\n", average_seek_time);
+    json_data = str_concat(json_data, "   \"fps\": %f,\n", average_seek_time > 0 ? 1.0 / average_seek_time : 0.0);
     json_data = str_concat(json_data, "   \"seek_times\": [\n");
     for (int i = 0; i < frame_count; i++)
     json_data = str_concat(json_data, "       %f%s\n", player_stat->frame_decode_times[i], i < (frame_count - 1) ? "," : "");
@@ -510,7 +792,9 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeSeekAndDecodeToSurfaces(JNIEnv *env
     }
     free(player_stat);
 
-    nmd_freep(&player);
+end:
+    if (player)
+        nmd_freep(&player);
 
     if (surface)
         (*env)->DeleteGlobalRef(env, surface);
@@ -524,8 +808,17 @@ JNIEXPORT void JNICALL
 Java_org_nopeforge_nmd_1android_NopeMD_nativeRandomSeekAndDecodeToSurface(JNIEnv *env,
                                                                                  jclass type,
                                                                                  jstring filename_,
-                                                                                 jobject surface)
+                                                                                 jobject surface,
+                                                                                 jint max_nb_packets,
+                                                                                 jint max_nb_frames,
+                                                                                 jint max_nb_sink,
+                                                                                 jint auto_hwaccel,
+                                                                                 jstring sw_pix_fmt)
 {
+    struct NopeMD_options options;
+    if (get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, auto_hwaccel, sw_pix_fmt) < 0)
+        return;
+
     jobject surface_ = (*env)->NewGlobalRef(env, surface);
     const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
 
@@ -546,10 +839,8 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeRandomSeekAndDecodeToSurface(JNIEnv
     if (!s)
         return;
 
-    nmd_set_option(s, "max_nb_packets", 1);
-    nmd_set_option(s, "max_nb_frames", 1);
-    nmd_set_option(s, "max_nb_sink", 1);
-    nmd_set_option(s, "sw_pix_fmt", NMD_PIXFMT_RGBA);
+    if (set_options(s, &options) < 0)
+        goto done;
     nmd_set_option(s, "opaque", &surface_);
     nmd_set_log_callback(s, NULL, nmd_android_log);
 
@@ -571,7 +862,11 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeRandomSeekAndDecodeToSurface(JNIEnv
     }
     __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Got %d frames in %f", nb_frames, av_gettime() - t);
 
-    for (int i = 0; i < nb_frames; i++) {
+    const int64_t start_time = get_monotonic_time();
+    for (int64_t now = start_time; now - start_time < nb_frames * PACING_PERIOD;
+         now = wait_next_tick(start_time, PACING_PERIOD)) {
+        /* Frames that could not be presented in time are dropped, not caught up */
+        timestamp = (now - start_time) / 1000000000.0;
         frame = nmd_get_frame(s, timestamp);
         if (frame && frame->pix_fmt == NMD_PIXFMT_MEDIACODEC) {
             nmd_mc_frame_render_and_releasep(&frame);
@@ -579,9 +874,6 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeRandomSeekAndDecodeToSurface(JNIEnv
         } else {
             nmd_frame_releasep(&frame);
         }
-
-        timestamp += 1/60.0f;
-        usleep(16666);
     }
     __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Got %d/%d frames", nb_frames2, nb_frames);
 
@@ -600,6 +892,7 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeRandomSeekAndDecodeToSurface(JNIEnv
         }
     }
 
+done:
     nmd_freep(&s);
     __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Done");
 
@@ -609,7 +902,14 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeRandomSeekAndDecodeToSurface(JNIEnv
 
 JNIEXPORT void JNICALL
 Java_org_nopeforge_nmd_1android_NopeMD_nativeAudioDecode(JNIEnv *env, jclass type,
-                                                                jstring filename_) {
+                                                                jstring filename_,
+                                                                jint max_nb_packets,
+                                                                jint max_nb_frames,
+                                                                jint max_nb_sink) {
+    /* Hardware acceleration and software pixel formats only apply to video */
+    struct NopeMD_options options;
+    get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, 0, NULL);
+
     const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
 
     struct nmd_ctx *s = nmd_create(filename);
@@ -618,9 +918,8 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeAudioDecode(JNIEnv *env, jclass typ
 
     nmd_set_option(s, "avselect", NMD_SELECT_AUDIO);
     nmd_set_option(s, "audio_texture", 0);
-    nmd_set_option(s, "max_nb_packets", 1);
-    nmd_set_option(s, "max_nb_frames", 1);
-    nmd_set_option(s, "max_nb_sink", 1);
+    if (set_options(s, &options) < 0)
+        goto done;
     nmd_set_log_callback(s, NULL, nmd_android_log);
 
     double t = 0;
@@ -636,7 +935,405 @@ Java_org_nopeforge_nmd_1android_NopeMD_nativeAudioDecode(JNIEnv *env, jclass typ
     }
     __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Got %d frames in %f", nb_frames, av_gettime() - t);
 
+done:
     nmd_freep(&s);
 
     (*env)->ReleaseStringUTFChars(env, filename_, filename);
 }
+
+struct NopeMD_stream_stat {
+    int64_t nb_presented;
+    int64_t nb_rendered;
+    int64_t nb_repeated;
+    int64_t nb_dropped;
+    int64_t nb_late;
+    double last_ts;
+    double frame_duration;
+    int64_t nb_drifts;
+    double drift_sum;
+    double max_drift;
+    double max_latency;
+};
+
+struct NopeMD_playback {
+    char *filename;
+    struct NopeMD_options options;
+    double duration;
+    int done;
+
+    int nb_streams;
+    jobject *surfaces;
+    struct nmd_ctx **players;
+    struct NopeMD_stream_stat *stream_stats;
+    struct nmd_ctx *audio_player;
+
+    int64_t start_time;
+    int64_t last_frame_time;
+    int64_t vsync_period;
+    int64_t nb_vsyncs;
+    int64_t nb_missed_vsyncs;
+    int64_t nb_late_vsyncs;
+
+    int64_t nb_stream_offsets;
+    double stream_offset_sum;
+    double max_stream_offset;
+
+    int64_t nb_av_offsets;
+    double av_offset_sum;
+    double max_av_offset;
+};
+
+static void playback_freep(JNIEnv *env, struct NopeMD_playback **sp)
+{
+    struct NopeMD_playback *s = *sp;
+    if (!s)
+        return;
+
+    if (s->players) {
+        for (int i = 0; i < s->nb_streams; i++) {
+            if (s->players[i])
+                nmd_freep(&s->players[i]);
+        }
+    }
+    free(s->players);
+
+    if (s->audio_player)
+        nmd_freep(&s->audio_player);
+
+    if (s->surfaces) {
+        for (int i = 0; i < s->nb_streams; i++) {
+            if (s->surfaces[i])
+                (*env)->DeleteGlobalRef(env, s->surfaces[i]);
+        }
+    }
+    free(s->surfaces);
+
+    free(s->stream_stats);
+    av_free(s->filename);
+    free(s);
+    *sp = NULL;
+}
+
+static struct NopeMD_playback *playback_create(JNIEnv *env,
+                                               const char *filename,
+                                               jobjectArray surfaces,
+                                               int nb_surfaces,
+                                               double duration,
+                                               const struct NopeMD_options *options,
+                                               int audio)
+{
+    struct NopeMD_playback *s = calloc(1, sizeof(*s));
+    if (!s)
+        return NULL;
+
+    s->filename = av_strdup(filename);
+    s->options = *options;
+    s->duration = duration;
+    s->nb_streams = nb_surfaces;
+    s->surfaces = calloc(nb_surfaces, sizeof(*s->surfaces));
+    s->players = calloc(nb_surfaces, sizeof(*s->players));
+    s->stream_stats = calloc(nb_surfaces, sizeof(*s->stream_stats));
+    if (!s->filename || !s->surfaces || !s->players || !s->stream_stats) {
+        playback_freep(env, &s);
+        return NULL;
+    }
+
+    for (int i = 0; i < nb_surfaces; i++) {
+        jobject surface = (*env)->GetObjectArrayElement(env, surfaces, i);
+        s->surfaces[i] = (*env)->NewGlobalRef(env, surface);
+        (*env)->DeleteLocalRef(env, surface);
+
+        struct nmd_ctx *ctx = nmd_create(filename);
+        s->players[i] = ctx;
+        if (!ctx || set_options(ctx, options) < 0) {
+            playback_freep(env, &s);
+            return NULL;
+        }
+        nmd_set_option(ctx, "opaque", &s->surfaces[i]);
+        nmd_set_log_callback(ctx, NULL, nmd_android_log);
+        nmd_start(ctx);
+    }
+
+    if (audio) {
+        s->audio_player = nmd_create(filename);
+        if (!s->audio_player) {
+            playback_freep(env, &s);
+            return NULL;
+        }
+        nmd_set_option(s->audio_player, "avselect", NMD_SELECT_AUDIO);
+        nmd_set_option(s->audio_player, "audio_texture", 0);
+        nmd_set_log_callback(s->audio_player, NULL, nmd_android_log);
+        nmd_start(s->audio_player);
+    }
+
+    return s;
+}
+
+/*
+ * Presents, for each stream, the frame matching the master clock at the given
+ * vsync time (CLOCK_MONOTONIC, in nanoseconds). A stream that has no new frame
+ * for this vsync keeps displaying (repeats) its previous one. Returns 1 once
+ * the playback duration has elapsed.
+ */
+static int playback_render(struct NopeMD_playback *s, int64_t frame_time)
+{
+    if (!s->nb_vsyncs) {
+        s->start_time = frame_time;
+    } else {
+        int64_t delta = frame_time - s->last_frame_time;
+        if (delta > 0 && (!s->vsync_period || delta < s->vsync_period))
+            s->vsync_period = delta;
+        if (s->vsync_period && delta > s->vsync_period * 3 / 2)
+            s->nb_missed_vsyncs += (delta + s->vsync_period / 2) / s->vsync_period - 1;
+    }
+    s->last_frame_time = frame_time;
+    s->nb_vsyncs++;
+
+    const double t = (frame_time - s->start_time) / 1000000000.0;
+
+    /* The frames must be presented before the next vsync */
+    const int64_t deadline = frame_time + (s->vsync_period ? s->vsync_period : PACING_PERIOD);
+
+    int nb_started = 0;
+    double min_ts = INFINITY;
+    double max_ts = -INFINITY;
+    for (int i = 0; i < s->nb_streams; i++) {
+        struct NopeMD_stream_stat *stat = &s->stream_stats[i];
+        struct nmd_frame *frame = nmd_get_frame(s->players[i], t);
+        if (frame) {
+            double ts = frame->ts;
+
+            /*
+             * Only MediaCodec frames are rendered to the surface; software
+             * frames are released without being drawn, so they have no
+             * presentation time and are left out of the lateness and drift
+             */
+            if (frame->pix_fmt == NMD_PIXFMT_MEDIACODEC) {
+                nmd_mc_frame_render_and_releasep(&frame);
+
+                /*
+                 * Lateness and drift are measured in wall-clock time: the
+                 * presentation time of the frame, relative to the start of
+                 * the playback, against its media time
+                 */
+                const int64_t presentation_time = get_monotonic_time();
+                if (presentation_time > deadline)
+                    stat->nb_late++;
+
+                const double latency = (presentation_time - frame_time) / 1000000000.0;
+                if (latency > stat->max_latency)
+                    stat->max_latency = latency;
+
+                const double drift = (presentation_time - s->start_time) / 1000000000.0 - ts;
+                stat->drift_sum += drift;
+                stat->nb_drifts++;
+                if (fabs(drift) > stat->max_drift)
+                    stat->max_drift = fabs(drift);
+
+                stat->nb_rendered++;
+            } else {
+                nmd_frame_releasep(&frame);
+            }
+
+            if (stat->nb_presented) {
+                double delta = ts - stat->last_ts;
+                if (delta > 0 && (stat->frame_duration <= 0 || delta < stat->frame_duration))
+                    stat->frame_duration = delta;
+                if (stat->frame_duration > 0 && delta > 1.5 * stat->frame_duration)
+                    stat->nb_dropped += lrint(delta / stat->frame_duration) - 1;
+            }
+            stat->last_ts = ts;
+            stat->nb_presented++;
+        } else if (stat->nb_presented) {
+            stat->nb_repeated++;
+        }
+
+        if (!stat->nb_presented)
+            continue;
+
+        nb_started++;
+        min_ts = fmin(min_ts, stat->last_ts);
+        max_ts = fmax(max_ts, stat->last_ts);
+    }
+
+    if (nb_started == s->nb_streams && s->nb_streams > 1) {
+        double offset = max_ts - min_ts;
+        s->stream_offset_sum += offset;
+        s->nb_stream_offsets++;
+        if (offset > s->max_stream_offset)
+            s->max_stream_offset = offset;
+    }
+
+    if (s->audio_player && s->stream_stats[0].nb_presented) {
+        struct nmd_frame *frame = nmd_get_frame(s->audio_player, t);
+        if (frame) {
+            double offset = frame->ts - s->stream_stats[0].last_ts;
+            nmd_frame_releasep(&frame);
+            s->av_offset_sum += offset;
+            s->nb_av_offsets++;
+            if (fabs(offset) > s->max_av_offset)
+                s->max_av_offset = fabs(offset);
+        }
+    }
+
+    /* The frames have not been presented before the next vsync */
+    if (s->vsync_period && get_monotonic_time() - frame_time > s->vsync_period)
+        s->nb_late_vsyncs++;
+
+    if (t >= s->duration)
+        s->done = 1;
+
+    return s->done;
+}
+
+static void playback_write_results(struct NopeMD_playback *s, const char *model, const char *output_path)
+{
+    char *json_data = calloc(1, sizeof(*json_data));
+    json_data = str_concat(json_data, "{\n");
+    json_data = str_concat(json_data, "   \"model\": \"%s\",\n", model);
+    json_data = str_concat(json_data, "   \"filename\": \"%s\",\n", s->filename);
+    json_data = str_concat(json_data, "   \"nb_streams\": %d,\n", s->nb_streams);
+    json_data = options_concat(json_data, &s->options);
+    json_data = str_concat(json_data, "   \"duration\": %f,\n", (s->last_frame_time - s->start_time) / 1000000000.0);
+    json_data = str_concat(json_data, "   \"vsync_period\": %f,\n", s->vsync_period / 1000000000.0);
+    json_data = str_concat(json_data, "   \"nb_vsyncs\": %" PRId64 ",\n", s->nb_vsyncs);
+    json_data = str_concat(json_data, "   \"nb_missed_vsyncs\": %" PRId64 ",\n", s->nb_missed_vsyncs);
+    json_data = str_concat(json_data, "   \"nb_late_vsyncs\": %" PRId64 ",\n", s->nb_late_vsyncs);
+    json_data = str_concat(json_data, "   \"avg_stream_offset\": %f,\n",
+                           s->nb_stream_offsets ? s->stream_offset_sum / s->nb_stream_offsets : 0.0);
+    json_data = str_concat(json_data, "   \"max_stream_offset\": %f,\n", s->max_stream_offset);
+    if (s->audio_player) {
+    json_data = str_concat(json_data, "   \"avg_av_offset\": %f,\n",
+                           s->nb_av_offsets ? s->av_offset_sum / s->nb_av_offsets : 0.0);
+    json_data = str_concat(json_data, "   \"max_av_offset\": %f,\n", s->max_av_offset);
+    }
+    json_data = str_concat(json_data, "   \"streams\": [\n");
+    for (int i = 0; i < s->nb_streams; i++) {
+        const struct NopeMD_stream_stat *stat = &s->stream_stats[i];
+    json_data = str_concat(json_data, "       {\n");
+    json_data = str_concat(json_data, "           \"nb_presented\": %" PRId64 ",\n", stat->nb_presented);
+    json_data = str_concat(json_data, "           \"nb_rendered\": %" PRId64 ",\n", stat->nb_rendered);
+    json_data = str_concat(json_data, "           \"nb_repeated\": %" PRId64 ",\n", stat->nb_repeated);
+    json_data = str_concat(json_data, "           \"nb_dropped\": %" PRId64 ",\n", stat->nb_dropped);
+    json_data = str_concat(json_data, "           \"nb_late\": %" PRId64 ",\n", stat->nb_late);
+    json_data = str_concat(json_data, "           \"frame_duration\": %f,\n", stat->frame_duration);
+    json_data = str_concat(json_data, "           \"avg_drift\": %f,\n",
+                           stat->nb_drifts ? stat->drift_sum / stat->nb_drifts : 0.0);
+    json_data = str_concat(json_data, "           \"max_drift\": %f,\n", stat->max_drift);
+    json_data = str_concat(json_data, "           \"max_latency\": %f\n", stat->max_latency);
+    json_data = str_concat(json_data, "       }%s\n", i < s->nb_streams - 1 ? "," : "");
+    }
+    json_data = str_concat(json_data, "   ]\n");
+    json_data = str_concat(json_data, "}\n\n");
+
+    __android_log_print(ANDROID_LOG_ERROR, "NopeMD", "Writing: %sto %s", json_data, output_path);
+    str_write(output_path, json_data);
+    free(json_data);
+}
+
+static void playback_frame_callback(long frame_time_nanos, void *data)
+{
+    struct NopeMD_playback *s = data;
+    if (!playback_render(s, frame_time_nanos))
+        AChoreographer_postFrameCallback(AChoreographer_getInstance(), playback_frame_callback, s);
+}
+
+JNIEXPORT void JNICALL
+Java_org_nopeforge_nmd_1android_NopeMD_nativeSyncedPlaybackToSurfaces(JNIEnv *env,
+                                                                        jclass type,
+                                                                        jstring model_,
+                                                                        jstring filename_,
+                                                                        jobjectArray surfaces,
+                                                                        jint nb_surfaces,
+                                                                        jdouble duration,
+                                                                        jint max_nb_packets,
+                                                                        jint max_nb_frames,
+                                                                        jint max_nb_sink,
+                                                                        jint auto_hwaccel,
+                                                                        jstring sw_pix_fmt,
+                                                                        jint audio,
+                                                                        jstring output_path_)
+{
+    struct NopeMD_options options;
+    if (get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, auto_hwaccel, sw_pix_fmt) < 0)
+        return;
+
+    const char *model = (*env)->GetStringUTFChars(env, model_, 0);
+    const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
+    const char *output_path = (*env)->GetStringUTFChars(env, output_path_, 0);
+
+    struct NopeMD_playback *s = playback_create(env, filename, surfaces, nb_surfaces, duration, &options, audio);
+    if (s) {
+        /* The vsync callbacks are dispatched by the looper of the calling thread */
+        ALooper_prepare(0);
+        AChoreographer_postFrameCallback(AChoreographer_getInstance(), playback_frame_callback, s);
+        while (!s->done)
+            ALooper_pollOnce(-1, NULL, NULL, NULL);
+
+        playback_write_results(s, model, output_path);
+        playback_freep(env, &s);
+    }
+
+    (*env)->ReleaseStringUTFChars(env, filename_, filename);
+    (*env)->ReleaseStringUTFChars(env, model_, model);
+    (*env)->ReleaseStringUTFChars(env, output_path_, output_path);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_nopeforge_nmd_1android_NopeMD_nativePlaybackCreate(JNIEnv *env,
+                                                              jclass type,
+                                                              jstring filename_,
+                                                              jobjectArray surfaces,
+                                                              jint nb_surfaces,
+                                                              jdouble duration,
+                                                              jint max_nb_packets,
+                                                              jint max_nb_frames,
+                                                              jint max_nb_sink,
+                                                              jint auto_hwaccel,
+                                                              jstring sw_pix_fmt,
+                                                              jint audio)
+{
+    struct NopeMD_options options;
+    if (get_options(env, &options, max_nb_packets, max_nb_frames, max_nb_sink, auto_hwaccel, sw_pix_fmt) < 0)
+        return 0;
+
+    const char *filename = (*env)->GetStringUTFChars(env, filename_, 0);
+    struct NopeMD_playback *s = playback_create(env, filename, surfaces, nb_surfaces, duration, &options, audio);
+    (*env)->ReleaseStringUTFChars(env, filename_, filename);
+
+    return (jlong)(intptr_t)s;
+}
+
+JNIEXPORT jint JNICALL
+Java_org_nopeforge_nmd_1android_NopeMD_nativePlaybackRender(JNIEnv *env,
+                                                              jclass type,
+                                                              jlong handle,
+                                                              jlong frame_time_nanos)
+{
+    struct NopeMD_playback *s = (struct NopeMD_playback *)(intptr_t)handle;
+    if (!s)
+        return 1;
+
+    return playback_render(s, frame_time_nanos);
+}
+
+JNIEXPORT void JNICALL
+Java_org_nopeforge_nmd_1android_NopeMD_nativePlaybackDestroy(JNIEnv *env,
+                                                               jclass type,
+                                                               jlong handle,
+                                                               jstring model_,
+                                                               jstring output_path_)
+{
+    struct NopeMD_playback *s = (struct NopeMD_playback *)(intptr_t)handle;
+    if (!s)
+        return;
+
+    const char *model = (*env)->GetStringUTFChars(env, model_, 0);
+    const char *output_path = (*env)->GetStringUTFChars(env, output_path_, 0);
+
+    playback_write_results(s, model, output_path);
+    playback_freep(env, &s);
+
+    (*env)->ReleaseStringUTFChars(env, model_, model);
+    (*env)->ReleaseStringUTFChars(env, output_path_, output_path);
+}